@@ -0,0 +1,311 @@
+package edu.jhu.tool;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Changes the ID of many books in a collection at once. A mapping table lists one
+ * book per line as "book,newId". For every book, files are renamed to the new ID and
+ * the "filename" attributes of the transcriptions' page elements are rewritten to
+ * point at the renamed images.
+ *
+ * Books are processed in parallel. Each book's directory is listed once and all
+ * conflict checks are made against that listing. Output is collected per book and
+ * printed in the order of the mapping table.
+ */
+public class IdRemapper {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Path collectionPath;
+    private final boolean dryRun;
+    private final int threads;
+
+    public IdRemapper(Path collectionPath, boolean dryRun, int threads) {
+        this.collectionPath = collectionPath;
+        this.dryRun = dryRun;
+        this.threads = threads;
+    }
+
+    /**
+     * @param mappingPath path of the mapping table
+     * @throws IOException
+     */
+    public void run(Path mappingPath) throws IOException {
+        List<String[]> mappings = loadMapping(mappingPath);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<BookReport>> results = new ArrayList<>();
+        for (final String[] mapping : mappings) {
+            results.add(executor.submit(new Callable<BookReport>() {
+                @Override
+                public BookReport call() throws Exception {
+                    return remapBook(mapping[0], mapping[1]);
+                }
+            }));
+        }
+        executor.shutdown();
+
+        int renamed = 0;
+        int rewritten = 0;
+        int errors = 0;
+        for (int i = 0; i < results.size(); i++) {
+            BookReport report;
+            try {
+                report = results.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                // Only the scan of the book can fail this way, before anything was changed.
+                report = new BookReport(mappings.get(i)[0], mappings.get(i)[1]);
+                report.error("Failed to change IDs. " + e.getMessage());
+            }
+
+            report.print();
+            renamed += report.renamed;
+            rewritten += report.rewritten;
+            errors += report.errors;
+        }
+
+        System.out.println("\nBooks: " + results.size() + ", files renamed: " + renamed
+                + ", transcriptions rewritten: " + rewritten + ", errors: " + errors
+                + (dryRun ? " (dry run)" : ""));
+    }
+
+    private List<String[]> loadMapping(Path mappingPath) throws IOException {
+        List<String[]> mappings = new ArrayList<>();
+        Set<String> books = new HashSet<>();
+        Set<String> ids = new HashSet<>();
+
+        int lineCount = 0;
+        for (String line : Files.readAllLines(mappingPath, UTF_8)) {
+            lineCount++;
+            if (line.startsWith("#") || line.trim().isEmpty()) {
+                continue;
+            }
+
+            String[] parts = line.split(",");
+            if (parts.length != 2 || parts[0].equals("") || parts[1].equals("")) {
+                System.out.println("[Error: line " + lineCount + "] Malformed line in ID mapping. " + line);
+                continue;
+            }
+
+            // Two workers must never touch the same book or produce the same names.
+            if (!books.add(parts[0])) {
+                System.out.println("[Error: line " + lineCount + "] Book is listed more than once, skipping. " + line);
+                continue;
+            }
+            if (!ids.add(parts[1])) {
+                System.out.println("[Error: line " + lineCount + "] New ID is used more than once, skipping. " + line);
+                continue;
+            }
+
+            mappings.add(parts);
+        }
+
+        return mappings;
+    }
+
+    /**
+     * Change the ID of one book. All transcriptions are read and their rewrites built
+     * before anything is touched, so a transcription that cannot be parsed or
+     * rewritten leaves the whole book as it was. Errors while moving or writing single
+     * files are recorded and the rest of the book carries on, with references only
+     * pointing at images that were moved.
+     */
+    private BookReport remapBook(String book, String newId) throws IOException {
+        BookReport report = new BookReport(book, newId);
+
+        Path bookPath = collectionPath.resolve(book);
+        if (!Files.isDirectory(bookPath)) {
+            report.error("Book not found. [" + bookPath + "]");
+            return report;
+        }
+
+        // Single scan of the book, every later check is made against these names.
+        Set<String> names = new TreeSet<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(bookPath)) {
+            for (Path p : ds) {
+                if (Files.isRegularFile(p)) {
+                    names.add(p.getFileName().toString());
+                }
+            }
+        }
+
+        Map<String, String> renames = new TreeMap<>();
+        Set<String> targets = new TreeSet<>();
+        for (String name : names) {
+            int dot = name.indexOf('.');
+            if (!Main.goodToRename(name) || name.startsWith(newId) || name.startsWith(".") || dot < 0) {
+                continue;
+            }
+
+            String newName = newId + name.substring(dot);
+            if (names.contains(newName) || !targets.add(newName)) {
+                report.error("Target name already exists. " + name + " --> " + newName);
+                continue;
+            }
+            renames.put(name, newName);
+        }
+
+        Set<String> plannedNames = new TreeSet<>(names);
+        plannedNames.removeAll(renames.keySet());
+        plannedNames.addAll(renames.values());
+
+        // Read every transcription and build its rewrite before anything is touched.
+        // The book is left unchanged if any of them cannot be read or rewritten.
+        List<PageReferences> transcriptions = new ArrayList<>();
+        boolean unreadable = false;
+        for (String name : names) {
+            if (!name.endsWith(".xml") || name.startsWith(".")) {
+                continue;
+            }
+
+            try {
+                PageReferences transcription = PageReferences.read(bookPath.resolve(name));
+                Map<String, String> changes = referenceChanges(transcription, newId, renames, plannedNames, report);
+                if (!changes.isEmpty() && transcription.rewrite(changes) == null) {
+                    report.error("Could not rewrite image references in place. [" + name + "]");
+                    unreadable = true;
+                }
+                transcriptions.add(transcription);
+            } catch (Exception e) {
+                report.error("Failed to read transcription. [" + name + "] " + e.getMessage());
+                unreadable = true;
+            }
+        }
+        if (unreadable) {
+            report.error("Book left unchanged.");
+            return report;
+        }
+
+        Map<String, String> moved = new TreeMap<>();
+        for (Map.Entry<String, String> entry : renames.entrySet()) {
+            report.log("Renaming file. " + entry.getKey() + " --> " + entry.getValue());
+            try {
+                Main.renameFile(bookPath.resolve(entry.getKey()), bookPath.resolve(entry.getValue()), dryRun);
+            } catch (IOException e) {
+                report.error("Failed to rename file. " + entry.getKey() + " --> " + entry.getValue() + " "
+                        + e.getMessage());
+                continue;
+            }
+            moved.put(entry.getKey(), entry.getValue());
+            report.renamed++;
+        }
+
+        Set<String> finalNames = new TreeSet<>(names);
+        finalNames.removeAll(moved.keySet());
+        finalNames.addAll(moved.values());
+
+        // Rebuilt against the images that were actually moved, which are all of them
+        // unless a move failed above.
+        for (PageReferences transcription : transcriptions) {
+            String name = moved.containsKey(transcription.name) ? moved.get(transcription.name) : transcription.name;
+
+            Map<String, String> changes = referenceChanges(transcription, newId, moved, finalNames, null);
+            if (changes.isEmpty()) {
+                continue;
+            }
+
+            report.log("Rewriting image references. [" + name + "]");
+            try {
+                byte[] bytes = transcription.rewrite(changes);
+                if (bytes == null) {
+                    report.error("Could not rewrite image references in place. [" + name + "]");
+                    continue;
+                }
+                if (!dryRun) {
+                    Files.write(bookPath.resolve(name), bytes);
+                }
+                report.rewritten++;
+            } catch (IOException e) {
+                report.error("Failed to rewrite transcription. [" + name + "] " + e.getMessage());
+            }
+        }
+
+        return report;
+    }
+
+    /**
+     * Work out where page references should point once images are renamed.
+     * References to images that were renamed before this run, and so have drifted,
+     * are fixed as well.
+     *
+     * @param transcription transcription to check
+     * @param newId new ID of the book
+     * @param renames old name -> new name of images that are renamed
+     * @param finalNames names in the book after the renames
+     * @param report report for references to unknown images, NULL to not report them
+     * @return old reference -> new reference
+     */
+    private static Map<String, String> referenceChanges(PageReferences transcription, String newId,
+                                                        Map<String, String> renames, Set<String> finalNames,
+                                                        BookReport report) {
+        Map<String, String> changes = new HashMap<>();
+        for (String ref : transcription.refs) {
+            String newRef = renames.get(ref);
+            if (newRef == null && !finalNames.contains(ref) && !ref.startsWith(newId) && ref.indexOf('.') > 0) {
+                String candidate = newId + ref.substring(ref.indexOf('.'));
+                if (finalNames.contains(candidate)) {
+                    newRef = candidate;
+                }
+            }
+
+            if (newRef != null) {
+                changes.put(ref, newRef);
+            } else if (report != null && !finalNames.contains(ref)) {
+                report.error("Transcription refers to an unknown image. [" + transcription.name + "] " + ref);
+            }
+        }
+
+        return changes;
+    }
+
+    /**
+     * Messages and counts for one book, printed together once the book is done.
+     */
+    private static class BookReport {
+        final String book;
+        final String newId;
+        final List<String> lines = new ArrayList<>();
+        int renamed = 0;
+        int rewritten = 0;
+        int errors = 0;
+
+        BookReport(String book, String newId) {
+            this.book = book;
+            this.newId = newId;
+        }
+
+        void log(String message) {
+            lines.add(message);
+        }
+
+        void error(String message) {
+            lines.add("[Error] " + message);
+            errors++;
+        }
+
+        void print() {
+            System.out.println("\nChanging IDs in book. [" + book + " --> " + newId + "]");
+            for (String line : lines) {
+                System.out.println("  " + line);
+            }
+            System.out.println("  Renamed " + renamed + " files, rewrote " + rewritten + " transcriptions, "
+                    + errors + " errors.");
+        }
+    }
+}
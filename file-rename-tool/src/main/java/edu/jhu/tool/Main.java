@@ -24,6 +24,9 @@ public class Main {
         options.addOption(new Option("n", "filemap_name", true, "Name of filemap file with file extension."));
         options.addOption(new Option("f", "force", false, "Force renaming."));
         options.addOption("I", "ID", false, "Files are already in the form needed, but the ID must change.");
+        options.addOption("M", "id-map", true, "Mapping table of \"book,newId\" lines. Changes the ID of every "
+                + "listed book in the collection and rewrites image references in its transcriptions.");
+        options.addOption("t", "threads", true, "Number of books to change at once with --id-map.");
         options.addOption("d", "dry-run", false, "Dry run. Tool will go through the motions, but will not actually change files. Can be used to inspect output to make sure things will go well.");
 
         CommandLineParser parser = new BasicParser();
@@ -34,6 +37,32 @@ public class Main {
 
     private static void run(CommandLine cmd) throws IOException {
         String[] args = cmd.getArgs();
+
+        if (cmd.hasOption("id-map")) {
+            if (args.length != 1) {
+                System.out.println("Must specify collection.");
+                return;
+            }
+
+            setDefaults(cmd);
+            int threads = Runtime.getRuntime().availableProcessors();
+            if (cmd.hasOption("threads")) {
+                try {
+                    threads = Integer.parseInt(cmd.getOptionValue("threads"));
+                } catch (NumberFormatException e) {
+                    threads = 0;
+                }
+                if (threads < 1) {
+                    System.out.println("Number of threads must be a whole number greater than 0.");
+                    return;
+                }
+            }
+
+            new IdRemapper(Paths.get(base).resolve(args[0]), cmd.hasOption("dry-run"), threads)
+                    .run(Paths.get(cmd.getOptionValue("id-map")));
+            return;
+        }
+
         if (args.length != 2) {
             System.out.println("Must specify collection and book.");
             return;
@@ -85,7 +114,7 @@ public class Main {
         }
     }
 
-    private static void renameFile(Path original, Path renamed, boolean dryRun) throws IOException {
+    static void renameFile(Path original, Path renamed, boolean dryRun) throws IOException {
         if (!dryRun) {
             Files.move(original, renamed);
         }
@@ -137,7 +166,7 @@ public class Main {
         }
     }
 
-    private static boolean goodToRename(String name) {
+    static boolean goodToRename(String name) {
         return !name.contains("filemap");
     }
 }
@@ -12,30 +12,66 @@ import org.xml.sax.ErrorHandler;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
-import javax.xml.XMLConstants;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
-import java.net.URL;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Main {
     private static final String DEFAULT_SCHEMA_URL = "http://www.livesandletters.ac.uk/schema/aor_20141118.xsd";
+    private static final int DEFAULT_QUIET_SECONDS = 60;
+    private static final int DEFAULT_QUEUE_SIZE = 16;
+    private static final int DEFAULT_STATUS_PORT = 8089;
+    private static final long DEFAULT_SAMPLE_SEED = 0;
     private static LSResourceResolver resourceResolver = new CachingUrlLSResourceResolver();
 
+    private static boolean failFast = false;
+    private static int maxErrors = 0;
+    private static double samplePercent = 100.0;
+    private static long sampleSeed = DEFAULT_SAMPLE_SEED;
+
+    /** Set in fail fast mode once the first error is seen, stops the whole run */
+    private static volatile boolean stopped = false;
+    private static int filesSeen = 0;
+    private static int filesValidated = 0;
+    private static volatile int filesWithErrors = 0;
+
     public static void main(String[] args) throws IOException, ParseException, SAXException {
         Options options = new Options();
         options.addOption(new Option("r", "recurse"));
         options.addOption(new Option("v", "verbose"));
-        options.addOption(new Option("schema", true, "URL for a schema to validate against."));
+        options.addOption(new Option("schema", true, "URL for a schema to validate against. With -detect, "
+                + "the schema for files that do not name one."));
+        options.addOption(new Option("detect", false, "Validate each file against the schema named by its "
+                + "xsi:schemaLocation, xsi:noNamespaceSchemaLocation or root namespace."));
+        options.addOption(new Option("routes", true, "File of \"schemaLocationOrNamespace,schemaUrl\" lines "
+                + "used with -detect, ex: to point at local copies of schemas."));
+        options.addOption(new Option("watch", false, "Run as a daemon. Arguments are collection roots to watch "
+                + "for new books, which are renamed by their file map and validated once they stop changing."));
+        options.addOption(new Option("quiet", true, "Seconds a book must go unchanged before it is processed. "
+                + "(watch mode, default " + DEFAULT_QUIET_SECONDS + ")"));
+        options.addOption(new Option("queue", true, "Maximum number of books waiting to be processed. "
+                + "(watch mode, default " + DEFAULT_QUEUE_SIZE + ")"));
+        options.addOption(new Option("port", true, "Port of the status endpoint on localhost. "
+                + "(watch mode, default " + DEFAULT_STATUS_PORT + ")"));
+        options.addOption(new Option("f", "fail-fast", false, "Stop the whole run on the first error."));
+        options.addOption(new Option("e", "max-errors", true, "Stop validating a file after this many errors."));
+        options.addOption(new Option("s", "sample", true, "Validate only this percentage of files, ex: 10%. "
+                + "The same files are picked on every run with the same seed."));
+        options.addOption(new Option("seed", true, "Seed used to pick sampled files. (default "
+                + DEFAULT_SAMPLE_SEED + ")"));
 
         CommandLineParser parser = new BasicParser();
 //        try {
@@ -53,25 +89,109 @@ public class Main {
         boolean verbose = cmd.hasOption("v");
         String schemaUrl = cmd.hasOption("schema") ? cmd.getOptionValue("schema") : DEFAULT_SCHEMA_URL;
 
-        SchemaFactory sFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-        Schema schema = sFactory.newSchema(new URL(schemaUrl));
+        // Checked before the schema is loaded, which can take a while.
+        failFast = cmd.hasOption("fail-fast");
+        Integer errors = intOption(cmd, "max-errors", 0, 1, Integer.MAX_VALUE);
+        if (errors == null) {
+            return;
+        }
+        maxErrors = errors;
+        if (cmd.hasOption("sample")) {
+            try {
+                samplePercent = Double.parseDouble(cmd.getOptionValue("sample").replace("%", ""));
+            } catch (NumberFormatException e) {
+                samplePercent = Double.NaN;
+            }
+            if (!(samplePercent > 0 && samplePercent <= 100)) {
+                System.out.println("Sample must be a percentage greater than 0 and at most 100.");
+                return;
+            }
+        }
+        if (cmd.hasOption("seed")) {
+            try {
+                sampleSeed = Long.parseLong(cmd.getOptionValue("seed"));
+            } catch (NumberFormatException e) {
+                System.out.println("Option [seed] must be a whole number.");
+                return;
+            }
+        }
+
+        Map<String, String> routes = cmd.hasOption("routes")
+                ? SchemaRouter.loadRoutes(Paths.get(cmd.getOptionValue("routes")))
+                : new HashMap<String, String>();
+        SchemaRouter schemas = new SchemaRouter(schemaUrl, cmd.hasOption("detect"), routes, resourceResolver);
+
+        if (cmd.hasOption("watch")) {
+            if (failFast || samplePercent < 100.0) {
+                System.out.println("Fail fast and sampling cannot be used in watch mode.");
+                return;
+            }
+
+            List<Path> roots = new ArrayList<>();
+            for (String path : args) {
+                roots.add(Paths.get(path));
+            }
+            if (roots.isEmpty()) {
+                System.out.println("Must specify at least one collection to watch.");
+                return;
+            }
+
+            Integer quiet = intOption(cmd, "quiet", DEFAULT_QUIET_SECONDS, 0, Integer.MAX_VALUE);
+            Integer queue = intOption(cmd, "queue", DEFAULT_QUEUE_SIZE, 1, Integer.MAX_VALUE);
+            Integer port = intOption(cmd, "port", DEFAULT_STATUS_PORT, 1, 65535);
+            if (quiet == null || queue == null || port == null) {
+                return;
+            }
+
+            new WatchDaemon(roots, schemas, verbose, quiet, queue, port).run();
+            return;
+        }
 
         for (String path : args) {
             Path p = Paths.get(path);
 
-            if (Files.notExists(p)) {
+            if (stopped) {
+                break;
+            } else if (Files.notExists(p)) {
                 continue;
             }
 
             if (Files.isDirectory(p)) {
-                handle_directory(p, schema, recurse, verbose);
+                handle_directory(p, schemas, recurse, verbose);
             } else if (Files.isRegularFile(p)) {
-                handle_file(p, schema, verbose);
+                handle_file(p, schemas, verbose);
             }
         }
+
+        printSummary(schemas);
+    }
+
+    /**
+     * @param cmd parsed command line
+     * @param opt name of the option
+     * @param defaultValue value used when the option is not given
+     * @param min smallest accepted value
+     * @param max largest accepted value
+     * @return value of the option, NULL if it is not a whole number in range
+     */
+    private static Integer intOption(CommandLine cmd, String opt, int defaultValue, int min, int max) {
+        if (!cmd.hasOption(opt)) {
+            return defaultValue;
+        }
+
+        try {
+            int value = Integer.parseInt(cmd.getOptionValue(opt));
+            if (value >= min && value <= max) {
+                return value;
+            }
+        } catch (NumberFormatException e) {}
+
+        System.out.println("Option [" + opt + "] must be a whole number from " + min
+                + (max == Integer.MAX_VALUE ? " up." : " to " + max + "."));
+        return null;
     }
 
-    private static void handle_directory(Path path, Schema schema, boolean recurse, boolean verbose) throws IOException {
+    static void handle_directory(Path path, SchemaRouter schemas, boolean recurse, boolean verbose) throws IOException {
         if (path.getFileName().toString().startsWith(".")) {
             return;
         }
@@ -79,61 +199,171 @@ public class Main {
         System.out.println("\n\nValidating files in directory [" + path.toString() + "]");
         try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
             for (Path p : files) {
-                if (Files.isDirectory(p) && recurse) {
-                    handle_directory(p, schema, true, verbose);
+                if (stopped) {
+                    return;
+                } else if (Files.isDirectory(p) && recurse) {
+                    handle_directory(p, schemas, true, verbose);
                 } else if (Files.isRegularFile(p)) {
-                    handle_file(p, schema, verbose);
+                    handle_file(p, schemas, verbose);
                 }
             }
         }
     }
 
-    private static void handle_file(Path path, Schema schema, boolean verbose) {
+    private static void handle_file(Path path, SchemaRouter schemas, boolean verbose) {
         String filename = path.getFileName().toString();
         if (filename.startsWith(".") || !filename.endsWith(".xml")) {
             return;
         }
 
-        Validator validator = schema.newValidator();
-        validator.setErrorHandler(new ErrorHandler() {
-            @Override
-            public void warning(SAXParseException e) throws SAXException {
-                System.out.println("    [WARNING] " + e.getSystemId() + ":" + e.getPublicId() + " ("
-                        + e.getLineNumber() + ":" + e.getColumnNumber() + ") - " + e.getMessage());
-            }
+        filesSeen++;
+        if (!inSample(path)) {
+            return;
+        }
+        filesValidated++;
 
-            @Override
-            public void error(SAXParseException e) throws SAXException {
-                System.out.println("    [ERROR] " + e.getSystemId() + ":" + e.getPublicId() + " ("
-                        + e.getLineNumber() + ":" + e.getColumnNumber() + ") - " + e.getMessage());
-            }
+        System.out.println("  Validating file: [" + path.toString() + "]");
+        Schema schema = schemas.schemaFor(path);
+        if (schema == null) {
+            fileFailed();
+            return;
+        }
 
-            @Override
-            public void fatalError(SAXParseException e) throws SAXException {
-                System.out.println("    [FATAL ERROR] " + e.getSystemId() + ":" + e.getPublicId() + " ("
-                        + e.getLineNumber() + ":" + e.getColumnNumber() + ") - " + e.getMessage());
-            }
-        });
+        CountingErrorHandler errorHandler = new CountingErrorHandler();
+        Validator validator = schema.newValidator();
+        validator.setErrorHandler(errorHandler);
         validator.setResourceResolver(resourceResolver);
 
-        System.out.println("  Validating file: [" + path.toString() + "]");
-        try {
+        try (InputStream in = Files.newInputStream(path)) {
             if (verbose) {
-                validator.validate(
-                        new StreamSource(Files.newInputStream(path)),
-                        new StreamResult(System.out)
-                );
+                validator.validate(new StreamSource(in), new StreamResult(System.out));
             } else {
-                validator.validate(new StreamSource(Files.newInputStream(path)));
+                validator.validate(new StreamSource(in));
             }
         } catch (IOException | SAXException e) {
-            if (verbose) {
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
-                e.printStackTrace(new PrintStream(out));
+            // Exceptions thrown by the error handler itself have already been reported and counted.
+            if (!errorHandler.aborted) {
+                if (verbose) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    e.printStackTrace(new PrintStream(out));
 
-                System.out.println("    [EXCEPTION] validating file. (" + path.toString() + ")\n    " + out.toString());
-            } else {
-                System.out.println("    [EXCEPTION] validating file. (" + path.toString() + ")\n    " + e.getMessage());
+                    System.out.println("    [EXCEPTION] validating file. (" + path.toString() + ")\n    " + out.toString());
+                } else {
+                    System.out.println("    [EXCEPTION] validating file. (" + path.toString() + ")\n    " + e.getMessage());
+                }
+                errorHandler.errors++;
+            }
+        }
+
+        if (errorHandler.errors > 0) {
+            fileFailed();
+        }
+    }
+
+    /**
+     * @return number of files with errors so far
+     */
+    static int errorCount() {
+        return filesWithErrors;
+    }
+
+    private static void fileFailed() {
+        filesWithErrors++;
+        if (failFast && !stopped) {
+            stopped = true;
+            System.out.println("    [FAIL FAST] Stopping after first error.");
+        }
+    }
+
+    /**
+     * Decide whether a file is part of the sample. The decision only depends on the
+     * file's path and the seed, so repeated runs pick the same files.
+     *
+     * @param path path of the file
+     * @return TRUE if the file should be validated
+     */
+    private static boolean inSample(Path path) {
+        if (samplePercent >= 100.0) {
+            return true;
+        }
+
+        long h = path.toAbsolutePath().normalize().toString().hashCode() + sampleSeed * 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        h = h ^ (h >>> 33);
+
+        return (h >>> 1) % 10000 < samplePercent * 100;
+    }
+
+    private static void printSummary(SchemaRouter schemas) {
+        System.out.println("\n\nValidated " + filesValidated + " of " + filesSeen + " files, "
+                + filesWithErrors + " with errors.");
+        for (Map.Entry<String, Integer> entry : schemas.usage().entrySet()) {
+            System.out.println("  " + entry.getValue() + " files against [" + entry.getKey() + "]");
+        }
+        if (stopped) {
+            System.out.println("Run stopped early on first error (fail fast).");
+        }
+
+        if (samplePercent >= 100.0 || filesValidated == 0 || stopped) {
+            return;
+        }
+
+        // 95% Wilson score interval on the proportion of files with errors
+        double n = filesValidated;
+        double p = filesWithErrors / n;
+        double z = 1.96;
+        double center = (p + z * z / (2 * n)) / (1 + z * z / n);
+        double margin = z * Math.sqrt(p * (1 - p) / n + z * z / (4 * n * n)) / (1 + z * z / n);
+        double low = Math.max(0, center - margin);
+        double high = Math.min(1, center + margin);
+
+        System.out.println(String.format("Sampled %.1f%% (seed %d). Estimated %.1f%% of files have errors "
+                + "(95%% confidence: %.1f%% - %.1f%%), about %d - %d of %d files.",
+                samplePercent, sampleSeed, p * 100, low * 100, high * 100,
+                Math.round(low * filesSeen), Math.round(high * filesSeen), filesSeen));
+    }
+
+    /**
+     * Reports validation problems and counts errors. Aborts validation of the current
+     * file once the error limit is reached, or on the first error in fail fast mode.
+     */
+    private static class CountingErrorHandler implements ErrorHandler {
+        int errors = 0;
+        boolean aborted = false;
+
+        @Override
+        public void warning(SAXParseException e) throws SAXException {
+            System.out.println("    [WARNING] " + e.getSystemId() + ":" + e.getPublicId() + " ("
+                    + e.getLineNumber() + ":" + e.getColumnNumber() + ") - " + e.getMessage());
+        }
+
+        @Override
+        public void error(SAXParseException e) throws SAXException {
+            System.out.println("    [ERROR] " + e.getSystemId() + ":" + e.getPublicId() + " ("
+                    + e.getLineNumber() + ":" + e.getColumnNumber() + ") - " + e.getMessage());
+            countError(e);
+        }
+
+        @Override
+        public void fatalError(SAXParseException e) throws SAXException {
+            System.out.println("    [FATAL ERROR] " + e.getSystemId() + ":" + e.getPublicId() + " ("
+                    + e.getLineNumber() + ":" + e.getColumnNumber() + ") - " + e.getMessage());
+            countError(e);
+            aborted = true;
+            throw e;
+        }
+
+        private void countError(SAXParseException e) throws SAXException {
+            errors++;
+
+            if (failFast) {
+                aborted = true;
+                throw e;
+            } else if (maxErrors > 0 && errors >= maxErrors) {
+                System.out.println("    [MAX ERRORS] Stopped validating file after " + errors + " errors.");
+                aborted = true;
+                throw e;
             }
         }
     }
@@ -0,0 +1,182 @@
+package edu.jhu.tool;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Raw text and page "filename" references of a transcription, used to change
+ * references in place. Only the attribute values are touched, so formatting,
+ * DOCTYPE and mixed content are kept as they are. The file is written back in the
+ * encoding named in its XML declaration.
+ */
+class PageReferences {
+    private static final String PAGE_TAG = "page";
+    private static final String FILENAME_ATTR = "filename";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /** Comments and CDATA are matched only to skip them, group 1 is set for page references */
+    private static final Pattern PAGE_FILENAME = Pattern.compile(
+            "<!--.*?-->|<!\\[CDATA\\[.*?\\]\\]>|(<" + PAGE_TAG + "\\s(?:[^>]*?\\s)?" + FILENAME_ATTR
+                    + "\\s*=\\s*)([\"'])(.*?)\\2", Pattern.DOTALL);
+    private static final Pattern DECLARED_ENCODING =
+            Pattern.compile("^(?:\\u00EF\\u00BB\\u00BF)?<\\?xml[^>]*?encoding\\s*=\\s*[\"']([A-Za-z0-9._-]+)[\"']");
+
+    final String name;
+    final Charset charset;
+    final String content;
+    /** Values of all page "filename" attributes, in document order */
+    final List<String> refs = new ArrayList<>();
+
+    private PageReferences(String name, Charset charset, String content) {
+        this.name = name;
+        this.charset = charset;
+        this.content = content;
+    }
+
+    /**
+     * Parse a transcription to make sure it is well formed and collect its page
+     * references.
+     *
+     * @param path path of the transcription
+     * @return raw text and references
+     * @throws Exception if the file cannot be read, decoded or parsed
+     */
+    static PageReferences read(Path path) throws Exception {
+        byte[] bytes = Files.readAllBytes(path);
+        Charset charset = declaredCharset(bytes);
+
+        String content = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(ByteBuffer.wrap(bytes))
+                .toString();
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        // External DTDs are often missing from the archive and are not needed here.
+        factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        DocumentBuilder builder = factory.newDocumentBuilder();
+        // Errors surface as the thrown exception and are reported by the caller.
+        builder.setErrorHandler(new ErrorHandler() {
+            @Override
+            public void warning(SAXParseException e) throws SAXException {}
+
+            @Override
+            public void error(SAXParseException e) throws SAXException {}
+
+            @Override
+            public void fatalError(SAXParseException e) throws SAXException {}
+        });
+
+        Document doc = builder.parse(new ByteArrayInputStream(bytes));
+        NodeList pages = doc.getElementsByTagName(PAGE_TAG);
+
+        PageReferences result = new PageReferences(path.getFileName().toString(), charset, content);
+        for (int i = 0; i < pages.getLength(); i++) {
+            String ref = ((Element) pages.item(i)).getAttribute(FILENAME_ATTR);
+            if (ref != null && !ref.equals("")) {
+                result.refs.add(ref);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param changes old reference -> new reference
+     * @return text with the references changed, encoded like the original, NULL if
+     *         the references found in the text do not match the parsed document
+     * @throws CharacterCodingException if a new reference cannot be written in the
+     *         file's encoding
+     */
+    byte[] rewrite(Map<String, String> changes) throws CharacterCodingException {
+        int expected = 0;
+        for (String ref : refs) {
+            if (changes.containsKey(ref)) {
+                expected++;
+            }
+        }
+
+        Matcher matcher = PAGE_FILENAME.matcher(content);
+        StringBuffer result = new StringBuffer();
+        int replaced = 0;
+        while (matcher.find()) {
+            if (matcher.group(1) == null) {
+                continue;
+            }
+
+            String newRef = changes.get(matcher.group(3));
+            if (newRef == null) {
+                continue;
+            }
+            matcher.appendReplacement(result,
+                    Matcher.quoteReplacement(matcher.group(1) + matcher.group(2) + newRef + matcher.group(2)));
+            replaced++;
+        }
+        matcher.appendTail(result);
+
+        if (replaced != expected) {
+            return null;
+        }
+
+        ByteBuffer encoded = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .encode(CharBuffer.wrap(result));
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @param bytes raw file
+     * @return encoding named in the XML declaration, UTF-8 if there is none
+     * @throws IOException if the encoding is unknown or not ASCII compatible
+     */
+    private static Charset declaredCharset(byte[] bytes) throws IOException {
+        for (int i = 0; i < Math.min(bytes.length, 4); i++) {
+            if (bytes[i] == 0 || bytes[i] == (byte) 0xFE || bytes[i] == (byte) 0xFF) {
+                throw new IOException("UTF-16 and UTF-32 transcriptions are not supported.");
+            }
+        }
+
+        String head = new String(bytes, 0, Math.min(bytes.length, 1024), ISO_8859_1);
+        Matcher matcher = DECLARED_ENCODING.matcher(head);
+        if (!matcher.find()) {
+            return UTF_8;
+        }
+
+        try {
+            Charset charset = Charset.forName(matcher.group(1));
+            if (charset.name().startsWith("UTF-16") || charset.name().startsWith("UTF-32")) {
+                throw new IOException("UTF-16 and UTF-32 transcriptions are not supported.");
+            }
+            return charset;
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            throw new IOException("Unsupported encoding. [" + matcher.group(1) + "]");
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package edu.jhu.tool;
+
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the schema each file is validated against. With detection on, only the
+ * prolog and root element of a file are read to find its xsi:schemaLocation,
+ * xsi:noNamespaceSchemaLocation or root namespace. A route table entry for the
+ * file's location or root namespace takes precedence over the location the file
+ * names, ex: to use a local copy of a remote or stale schema. Files without a
+ * usable hint fall back to the default schema.
+ *
+ * Every schema is compiled once and kept for the rest of the run.
+ */
+public class SchemaRouter {
+    private final String defaultSchemaUrl;
+    private final boolean detect;
+    /** Schema location or namespace -> schema URL */
+    private final Map<String, String> routes;
+
+    private final SchemaFactory schemaFactory;
+    private final XMLInputFactory inputFactory;
+    private final Map<String, Schema> schemas = new ConcurrentHashMap<>();
+    private final Map<String, String> failed = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> usage = new ConcurrentHashMap<>();
+
+    /**
+     * @param defaultSchemaUrl schema used when detection is off or finds nothing
+     * @param detect TRUE to detect the schema of each file
+     * @param routes table of schema location or namespace to schema URL, can be empty
+     * @param resourceResolver resolver used for imports and includes while compiling
+     * @throws IOException
+     * @throws SAXException if the default schema cannot be compiled
+     */
+    public SchemaRouter(String defaultSchemaUrl, boolean detect, Map<String, String> routes,
+                        LSResourceResolver resourceResolver) throws IOException, SAXException {
+        this.defaultSchemaUrl = defaultSchemaUrl;
+        this.detect = detect;
+        this.routes = routes;
+
+        this.schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        this.schemaFactory.setResourceResolver(resourceResolver);
+
+        this.inputFactory = XMLInputFactory.newInstance();
+        this.inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        this.inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        schemas.put(normalize(defaultSchemaUrl), schemaFactory.newSchema(new URL(defaultSchemaUrl)));
+    }
+
+    /**
+     * @param routeFile file of "schemaLocationOrNamespace,schemaUrl" lines
+     * @return route table
+     * @throws IOException
+     */
+    public static Map<String, String> loadRoutes(Path routeFile) throws IOException {
+        Map<String, String> routes = new HashMap<>();
+
+        for (String line : Files.readAllLines(routeFile, Charset.forName("UTF-8"))) {
+            if (line.startsWith("#") || line.trim().isEmpty()) {
+                continue;
+            }
+
+            String[] parts = line.split(",");
+            if (parts.length != 2 || parts[0].equals("") || parts[1].equals("")) {
+                System.out.println("[Error] Malformed line in schema routes. [" + line + "]");
+                continue;
+            }
+
+            routes.put(parts[0].trim(), parts[1].trim());
+        }
+
+        return routes;
+    }
+
+    /**
+     * @param path path of the XML file
+     * @return compiled schema for the file, NULL if its schema cannot be compiled
+     */
+    public Schema schemaFor(Path path) {
+        String url = normalize(detect ? detectSchemaUrl(path) : defaultSchemaUrl);
+
+        Schema schema = schemas.get(url);
+        if (schema == null) {
+            schema = compile(url);
+        }
+        if (schema == null) {
+            System.out.println("    [ERROR] Could not load schema. [" + url + "] " + failed.get(url));
+            return null;
+        }
+
+        if (detect) {
+            usage.putIfAbsent(url, new AtomicInteger());
+            usage.get(url).incrementAndGet();
+        }
+
+        return schema;
+    }
+
+    /**
+     * @return number of files validated against each detected schema
+     */
+    public Map<String, Integer> usage() {
+        Map<String, Integer> result = new TreeMap<>();
+        for (Map.Entry<String, AtomicInteger> entry : usage.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    private synchronized Schema compile(String url) {
+        // Another thread may have compiled it while we waited.
+        if (schemas.containsKey(url)) {
+            return schemas.get(url);
+        } else if (failed.containsKey(url)) {
+            return null;
+        }
+
+        try {
+            Schema schema = schemaFactory.newSchema(new URL(url));
+            schemas.put(url, schema);
+            return schema;
+        } catch (IOException | SAXException e) {
+            failed.put(url, String.valueOf(e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Different spellings of the same URL, ex: "file:///a.xsd" and "file:/a.xsd",
+     * share one compiled schema.
+     */
+    private static String normalize(String url) {
+        try {
+            return new URL(url).toExternalForm();
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    /**
+     * Read up to the root element and pick a schema URL from its attributes.
+     *
+     * @param path path of the XML file
+     * @return schema URL for the file
+     */
+    private String detectSchemaUrl(Path path) {
+        String namespace = null;
+        String location = null;
+
+        try (InputStream in = Files.newInputStream(path)) {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    // Skip prolog: declaration, comments, processing instructions, DOCTYPE
+                }
+
+                if (reader.getEventType() == XMLStreamConstants.START_ELEMENT) {
+                    namespace = reader.getNamespaceURI();
+                    location = pickLocation(namespace,
+                            reader.getAttributeValue(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "schemaLocation"),
+                            reader.getAttributeValue(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI,
+                                    "noNamespaceSchemaLocation"));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | XMLStreamException e) {
+            // Unreadable prolog, validation will report the real problem.
+            return defaultSchemaUrl;
+        }
+
+        // An explicit route wins over whatever location the file itself names.
+        if (location != null && routes.containsKey(location)) {
+            return routes.get(location);
+        } else if (namespace != null && routes.containsKey(namespace)) {
+            return routes.get(namespace);
+        }
+
+        if (location != null) {
+            try {
+                return path.toUri().resolve(location).toString();
+            } catch (IllegalArgumentException e) {
+                System.out.println("    [WARNING] Bad schema location, using default schema. [" + location + "]");
+            }
+        }
+
+        return defaultSchemaUrl;
+    }
+
+    /**
+     * @param namespace namespace of the root element, NULL if it has none
+     * @param schemaLocation value of xsi:schemaLocation, pairs of namespace and location
+     * @param noNamespaceLocation value of xsi:noNamespaceSchemaLocation
+     * @return location of the schema for the root element, NULL if none is given
+     */
+    private static String pickLocation(String namespace, String schemaLocation, String noNamespaceLocation) {
+        if (schemaLocation != null) {
+            String[] parts = schemaLocation.trim().split("\\s+");
+
+            String first = null;
+            for (int i = 0; i + 1 < parts.length; i += 2) {
+                if (first == null) {
+                    first = parts[i + 1];
+                }
+                if (parts[i].equals(namespace)) {
+                    return parts[i + 1];
+                }
+            }
+            if (first != null) {
+                return first;
+            }
+        }
+
+        if (noNamespaceLocation != null && !noNamespaceLocation.trim().isEmpty()) {
+            return noNamespaceLocation.trim();
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,537 @@
+package edu.jhu.tool;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long running mode of the validator. Watches collection roots for new or changed
+ * book directories and, once a book has been quiet for a while, applies its file map
+ * and validates its transcriptions using the schemas and resource cache that are
+ * already warm in this JVM.
+ *
+ * Books are handed to a single worker through a bounded queue. When the queue is
+ * full, books stay pending and are offered again on the next check instead of
+ * being dropped.
+ *
+ * Nothing is remembered between runs. At startup, only existing books whose file
+ * map still has images to rename are queued. Other existing books are processed the
+ * next time they change.
+ */
+public class WatchDaemon {
+    private static final String FILE_MAP_NAME = "filemap.csv";
+    private static final long CHECK_INTERVAL_MS = 1000;
+
+    private final List<Path> roots;
+    private final SchemaRouter schemas;
+    private final boolean verbose;
+    private final long quietMillis;
+    private final int port;
+
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+    /** Book path -> time of the last file system event seen for it */
+    private final ConcurrentHashMap<Path, Long> pending = new ConcurrentHashMap<>();
+    /** Book path -> expected fingerprint of the book after it was last processed */
+    private final Map<Path, Long> processed = new ConcurrentHashMap<>();
+    private final Map<Path, Boolean> inProgress = new ConcurrentHashMap<>();
+
+    private final ThreadPoolExecutor worker;
+    private final ScheduledExecutorService debouncer;
+
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger booksWithErrors = new AtomicInteger();
+    private final AtomicInteger deferred = new AtomicInteger();
+    private volatile String lastBook = "";
+
+    public WatchDaemon(List<Path> roots, SchemaRouter schemas, boolean verbose, int quietSeconds, int queueSize,
+                       int port) throws IOException {
+        this.roots = roots;
+        this.schemas = schemas;
+        this.verbose = verbose;
+        this.quietMillis = TimeUnit.SECONDS.toMillis(quietSeconds);
+        this.port = port;
+
+        this.watcher = roots.get(0).getFileSystem().newWatchService();
+        this.worker = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize));
+        this.debouncer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Register watches, start the status endpoint and block while dispatching file
+     * system events.
+     *
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        for (Path root : roots) {
+            if (!Files.isDirectory(root)) {
+                System.out.println("Collection root is not a directory, skipping. [" + root + "]");
+                continue;
+            }
+
+            register(root);
+            try (DirectoryStream<Path> books = Files.newDirectoryStream(root)) {
+                for (Path book : books) {
+                    if (isBook(book)) {
+                        register(book);
+                        if (hasPendingFileMap(book)) {
+                            pending.put(book, System.currentTimeMillis());
+                        }
+                    }
+                }
+            }
+        }
+
+        startStatusServer();
+        debouncer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                dispatchQuietBooks();
+            }
+        }, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        System.out.println("Watching " + roots.size() + " collection(s). Status at http://localhost:" + port + "/status");
+
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            Path dir = keys.get(key);
+            if (dir != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    try {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            handleOverflow(dir);
+                        } else {
+                            handleEvent(dir, (Path) event.context());
+                        }
+                    } catch (IOException e) {
+                        // Ex: a directory removed right after it was created
+                        System.out.println("[Error] Failed to handle change in [" + dir + "] " + e.getMessage());
+                    }
+                }
+            }
+
+            if (!key.reset()) {
+                keys.remove(key);
+            }
+        }
+
+        debouncer.shutdownNow();
+        worker.shutdownNow();
+    }
+
+    private void handleEvent(Path dir, Path name) throws IOException {
+        Path child = dir.resolve(name);
+
+        Path book;
+        if (roots.contains(dir)) {
+            // New or changed book directory directly under a collection root
+            if (!isBook(child)) {
+                return;
+            }
+            register(child);
+            book = child;
+        } else {
+            book = dir;
+        }
+
+        // Changes during processing are kept, the book is checked again once it is done.
+        pending.put(book, System.currentTimeMillis());
+    }
+
+    /**
+     * Events for the directory were lost. For a collection root, every book under it
+     * is registered and checked again, otherwise the book itself is.
+     */
+    private void handleOverflow(Path dir) throws IOException {
+        if (!roots.contains(dir)) {
+            pending.put(dir, System.currentTimeMillis());
+            return;
+        }
+
+        try (DirectoryStream<Path> books = Files.newDirectoryStream(dir)) {
+            for (Path book : books) {
+                if (isBook(book)) {
+                    register(book);
+                    pending.put(book, System.currentTimeMillis());
+                }
+            }
+        }
+    }
+
+    /**
+     * Hand every book that has not changed for the quiet period to the worker. A full
+     * queue leaves the book pending so it is offered again on the next check.
+     */
+    private void dispatchQuietBooks() {
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<Path, Long> entry : pending.entrySet()) {
+            if (now - entry.getValue() < quietMillis) {
+                continue;
+            }
+
+            final Path book = entry.getKey();
+            if (inProgress.containsKey(book)) {
+                continue;
+            } else if (!Files.isDirectory(book)) {
+                pending.remove(book, entry.getValue());
+                continue;
+            }
+
+            // Events caused by our own renames land after processing, ignore them
+            // if the book is exactly as processing left it.
+            Long last = processed.get(book);
+            if (last != null && last == fingerprint(book)) {
+                pending.remove(book, entry.getValue());
+                continue;
+            }
+
+            // Removed before the worker can start, so an event landing once processing
+            // has begun stays pending. Only removed if no newer event replaced it.
+            if (!pending.remove(book, entry.getValue())) {
+                continue;
+            }
+            inProgress.put(book, Boolean.TRUE);
+            try {
+                worker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        process(book);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                pending.putIfAbsent(book, entry.getValue());
+                inProgress.remove(book);
+                deferred.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private void process(Path book) {
+        lastBook = book.toString();
+
+        // Expected state afterwards is the state now plus our own renames. Anything
+        // that lands while the book is processed makes it differ and triggers another pass.
+        long expected = fingerprint(book);
+        try {
+            System.out.println("\n\nProcessing book. [" + book + "]");
+            expected += applyFileMap(book);
+
+            int errorsBefore = Main.errorCount();
+            Main.handle_directory(book, schemas, true, verbose);
+            if (Main.errorCount() > errorsBefore) {
+                booksWithErrors.incrementAndGet();
+            }
+            completed.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("[Error] Failed to process book. [" + book + "] " + e.getMessage());
+            failed.incrementAndGet();
+        } finally {
+            processed.put(book, expected);
+            inProgress.remove(book);
+        }
+    }
+
+    /**
+     * Apply the book's file map, if it has one. Images are renamed with the same rules
+     * as the rename tool: malformed lines, missing sources and existing targets are
+     * reported and skipped. Lines already applied on an earlier pass, where only the
+     * target exists, are skipped quietly.
+     *
+     * Transcriptions are updated as the transcription rename tool does: page
+     * references follow the images and the file is renamed after its page. Only the
+     * attribute values are changed in place. All transcriptions are read and checked
+     * first, and if any of them cannot be updated no image is renamed, so references
+     * never point at images that are gone.
+     *
+     * @param book path of the book in the archive
+     * @return change of the book's fingerprint caused by the renames
+     * @throws IOException
+     */
+    private long applyFileMap(Path book) throws IOException {
+        Path fileMapPath = book.resolve(FILE_MAP_NAME);
+        if (!Files.isRegularFile(fileMapPath)) {
+            return 0;
+        }
+
+        Map<String, String> renames = new LinkedHashMap<>();
+        int lineCount = 0;
+        for (String line : Files.readAllLines(fileMapPath, Charset.forName("UTF-8"))) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+
+            String[] parts = line.split(",");
+            lineCount++;
+
+            if (parts.length != 2 || parts[0].equals("") || parts[1].equals("")) {
+                System.out.println("[Error: line " + lineCount + "] Malformed line in file map. " + line);
+                continue;
+            }
+
+            Path filePath = book.resolve(parts[0]);
+            Path renamedPath = book.resolve(parts[1]);
+            if (!Files.isRegularFile(filePath)) {
+                if (!Files.exists(renamedPath)) {
+                    System.out.println("[Error: line " + lineCount + "] File does not exist or cannot be loaded. "
+                            + parts[0]);
+                }
+                continue;
+            }
+            if (Files.exists(renamedPath) || renames.containsValue(parts[1])) {
+                System.out.println("[Error: line " + lineCount + "] Target name already exists. "
+                        + parts[0] + " --> " + parts[1]);
+                continue;
+            }
+
+            renames.put(parts[0], parts[1]);
+        }
+
+        if (renames.isEmpty()) {
+            return 0;
+        }
+
+        // Read every transcription and check its update before anything is touched.
+        Map<String, PageReferences> transcriptions = new TreeMap<>();
+        Map<String, String> transcriptionNames = new HashMap<>();
+        boolean ok = true;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(book)) {
+            for (Path path : ds) {
+                String name = path.getFileName().toString();
+                if (!name.endsWith(".xml") || name.startsWith(".") || name.contains("description")) {
+                    continue;
+                }
+
+                try {
+                    PageReferences transcription = PageReferences.read(path);
+                    Map<String, String> changes = referenceChanges(transcription, renames);
+                    if (changes.isEmpty()) {
+                        continue;
+                    }
+                    if (transcription.rewrite(changes) == null) {
+                        System.out.println("[Error] Could not rewrite image references in place. [" + name + "]");
+                        ok = false;
+                        continue;
+                    }
+
+                    String newName = changes.get(firstChangedRef(transcription, changes)).replace(".tif", ".xml");
+                    if (!newName.equals(name)
+                            && (Files.exists(book.resolve(newName)) || transcriptionNames.containsValue(newName))) {
+                        System.out.println("[Error] Target file already exists! [" + newName + "]");
+                        ok = false;
+                        continue;
+                    }
+
+                    transcriptions.put(name, transcription);
+                    transcriptionNames.put(name, newName);
+                } catch (Exception e) {
+                    System.out.println("[Error] Failed to read transcription. [" + name + "] " + e.getMessage());
+                    ok = false;
+                }
+            }
+        }
+        if (!ok) {
+            System.out.println("[Error] File map not applied, transcriptions could not be updated. [" + book + "]");
+            return 0;
+        }
+
+        long delta = 0;
+        Map<String, String> moved = new HashMap<>();
+        for (Map.Entry<String, String> entry : renames.entrySet()) {
+            Path filePath = book.resolve(entry.getKey());
+            Path renamedPath = book.resolve(entry.getValue());
+
+            System.out.println("Renaming file. " + entry.getKey() + " --> " + entry.getValue());
+            try {
+                long before = fingerprintOf(filePath);
+                Files.move(filePath, renamedPath);
+                delta += fingerprintOf(renamedPath) - before;
+                moved.put(entry.getKey(), entry.getValue());
+            } catch (IOException e) {
+                System.out.println("[Error] Failed to rename file. " + entry.getKey() + " --> " + entry.getValue()
+                        + " " + e.getMessage());
+            }
+        }
+
+        // Rebuilt against the images that were actually moved, which are all of them
+        // unless a move failed above.
+        for (Map.Entry<String, PageReferences> entry : transcriptions.entrySet()) {
+            Map<String, String> changes = referenceChanges(entry.getValue(), moved);
+            if (changes.isEmpty()) {
+                continue;
+            }
+
+            Path original = book.resolve(entry.getKey());
+            Path target = book.resolve(transcriptionNames.get(entry.getKey()));
+            System.out.println("Modifying and renaming file. [" + entry.getKey() + "]");
+            try {
+                byte[] bytes = entry.getValue().rewrite(changes);
+                if (bytes == null) {
+                    System.out.println("[Error] Could not rewrite image references in place. [" + entry.getKey() + "]");
+                    continue;
+                }
+
+                long before = fingerprintOf(original);
+                Files.write(target, bytes);
+                if (!target.equals(original)) {
+                    Files.delete(original);
+                }
+                delta += fingerprintOf(target) - before;
+            } catch (IOException e) {
+                System.out.println("[Error] Failed to update transcription. [" + entry.getKey() + "] "
+                        + e.getMessage());
+            }
+        }
+
+        return delta;
+    }
+
+    private static Map<String, String> referenceChanges(PageReferences transcription, Map<String, String> renames) {
+        Map<String, String> changes = new HashMap<>();
+        for (String ref : transcription.refs) {
+            if (renames.containsKey(ref)) {
+                changes.put(ref, renames.get(ref));
+            }
+        }
+        return changes;
+    }
+
+    private static String firstChangedRef(PageReferences transcription, Map<String, String> changes) {
+        for (String ref : transcription.refs) {
+            if (changes.containsKey(ref)) {
+                return ref;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param book path of the book in the archive
+     * @return TRUE if the book's file map still has images left to rename
+     */
+    private boolean hasPendingFileMap(Path book) {
+        Path fileMapPath = book.resolve(FILE_MAP_NAME);
+        if (!Files.isRegularFile(fileMapPath)) {
+            return false;
+        }
+
+        try {
+            for (String line : Files.readAllLines(fileMapPath, Charset.forName("UTF-8"))) {
+                String[] parts = line.split(",");
+                if (line.startsWith("#") || parts.length != 2 || parts[0].equals("") || parts[1].equals("")) {
+                    continue;
+                }
+
+                if (Files.isRegularFile(book.resolve(parts[0])) && !Files.exists(book.resolve(parts[1]))) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("[Error] Failed to read file map. [" + fileMapPath + "] " + e.getMessage());
+        }
+
+        return false;
+    }
+
+    private void register(Path dir) throws IOException {
+        WatchKey key = dir.register(watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        keys.put(key, dir);
+    }
+
+    private boolean isBook(Path path) {
+        return Files.isDirectory(path) && !path.getFileName().toString().startsWith(".");
+    }
+
+    /**
+     * @param book path of the book in the archive
+     * @return cheap summary of names, sizes and modification times of the book's files,
+     *         the sum of {@link #fingerprintOf(Path)} over all of them
+     */
+    private long fingerprint(Path book) {
+        long result = 17;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(book)) {
+            for (Path p : ds) {
+                result += fingerprintOf(p);
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        return result;
+    }
+
+    private long fingerprintOf(Path file) throws IOException {
+        return 31 * file.getFileName().toString().hashCode()
+                + Files.size(file)
+                + Files.getLastModifiedTime(file).toMillis();
+    }
+
+    private void startStatusServer() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/status", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = status().getBytes("UTF-8");
+
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+    }
+
+    private String status() {
+        return "watched_dirs=" + keys.size() + "\n"
+                + "pending=" + pending.size() + "\n"
+                + "queued=" + worker.getQueue().size() + "\n"
+                + "queue_capacity=" + (worker.getQueue().size() + worker.getQueue().remainingCapacity()) + "\n"
+                + "active=" + worker.getActiveCount() + "\n"
+                + "completed=" + completed.get() + "\n"
+                + "failed=" + failed.get() + "\n"
+                + "books_with_errors=" + booksWithErrors.get() + "\n"
+                + "files_with_errors=" + Main.errorCount() + "\n"
+                + "deferred=" + deferred.get() + "\n"
+                + "last_book=" + lastBook + "\n";
+    }
+}